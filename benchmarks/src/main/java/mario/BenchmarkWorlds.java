@@ -0,0 +1,48 @@
+package mario;
+
+import java.util.List;
+import java.util.Random;
+
+// Worlds for the benchmarks: already past the title screen, with terrain generated out to
+// a given number of chunks and an invincible player standing at the spawn point, so nothing
+// ends the game partway through a measurement. The world seed is fixed, so every run
+// measures the same level.
+final class BenchmarkWorlds {
+    private BenchmarkWorlds() {}
+
+    static GameWorld playing(int chunks) {
+        GameWorld world = new GameWorld(new SilentSoundSink(), 42);
+        world.reset();
+
+        InputState start = new InputState();
+        start.set(InputState.START, true);
+        world.step(start);
+
+        while (world.getWorldRightEdge() < chunks * ChunkManager.CHUNK_WIDTH) {
+            world.generateTerrain();
+        }
+
+        Player player = world.getPlayer();
+        player.setInvincible(true);
+        player.setInvincibleTime(Long.MAX_VALUE);
+        return world;
+    }
+
+    // Replaces the generated enemies with the given number spread over solid ground, where
+    // they patrol back and forth without falling out of the world
+    static void populateEnemies(GameWorld world, int count, long seed) {
+        List<Enemy> enemies = world.getEnemies();
+        enemies.clear();
+
+        Random random = new Random(seed);
+        GroundColumns ground = world.getGround();
+        int columns = world.getWorldRightEdge() / GameWorld.TILE_SIZE;
+        while (enemies.size() < count) {
+            int column = random.nextInt(columns);
+            if (ground.isSolid(column)) {
+                enemies.add(new Enemy(column * GameWorld.TILE_SIZE, GameWorld.GROUND_LEVEL - 30,
+                        random.nextBoolean() ? 1 : -1));
+            }
+        }
+    }
+}
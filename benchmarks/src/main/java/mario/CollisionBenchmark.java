@@ -0,0 +1,46 @@
+package mario;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Resolving a single player collision: landing on a platform and bumping a block from
+// below. The player is put back into the overlapping position before every call.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+    private static final int TILE_SIZE = GameWorld.TILE_SIZE;
+
+    private GameWorld world;
+    private Player player;
+    private Platform platform;
+    private Block block;
+
+    @Setup
+    public void setUp() {
+        world = BenchmarkWorlds.playing(1);
+        player = new Player(0, 0);
+        platform = new Platform(400, 400, TILE_SIZE * 4, TILE_SIZE);
+        block = new Block(400, 300, Block.Type.BRICK, Block.Content.COIN);
+    }
+
+    @Benchmark
+    public Player handlePlatformCollision() {
+        player.setX(420);
+        player.setY(platform.getY() - player.getHeight() + 5);
+        player.setVelY(5);
+        world.handlePlatformCollision(player, platform);
+        return player;
+    }
+
+    @Benchmark
+    public boolean handleBlockCollision() {
+        player.setX(400);
+        player.setY(block.getY() + block.getHeight() - 5);
+        player.setVelY(-5);
+        return world.handleBlockCollision(player, block);
+    }
+}
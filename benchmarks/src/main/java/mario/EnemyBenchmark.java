@@ -0,0 +1,38 @@
+package mario;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Moving every enemy one tick (GameWorld.updateEnemies) at increasing enemy counts, over
+// a 16-chunk world. With parallel=true the movement phase always goes through the fork-join
+// pool (threshold 1), so small counts show the overhead the default threshold avoids; size the
+// pool with -Djava.util.concurrent.ForkJoinPool.common.parallelism=N in the fork's jvmArgs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnemyBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int enemyCount;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private GameWorld world;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        world = BenchmarkWorlds.playing(16);
+        BenchmarkWorlds.populateEnemies(world, enemyCount, 42);
+        world.setParallelUpdate(parallel);
+        world.setParallelThreshold(1);
+    }
+
+    @Benchmark
+    public GameWorld updateEnemies() {
+        world.updateEnemies();
+        return world;
+    }
+}
@@ -0,0 +1,48 @@
+package mario;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Drawing one gameplay frame. recordDrawGame only records the command buffer, as the game
+// thread does; drawGameToImage also replays it into an off-screen image, as the EDT does.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+    private MarioGame game;
+    private final RenderBuffer buffer = new RenderBuffer();
+    private BufferedImage image;
+    private Graphics2D graphics;
+
+    @Setup
+    public void setUp() {
+        game = new MarioGame(BenchmarkWorlds.playing(4));
+        image = new BufferedImage(GameWorld.SCREEN_WIDTH, GameWorld.SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public RenderBuffer recordDrawGame() {
+        buffer.reset();
+        game.drawGame(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public BufferedImage drawGameToImage() {
+        buffer.reset();
+        game.drawGame(buffer);
+        buffer.replay(graphics);
+        return image;
+    }
+}
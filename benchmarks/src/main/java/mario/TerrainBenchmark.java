@@ -0,0 +1,33 @@
+package mario;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Generating one slice of terrain (two screens wide). Each call grows the world, so every
+// measurement generates a fixed run of slices into a freshly reset world instead of looping
+// open-ended; the score is per slice.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50)
+@Measurement(iterations = 20)
+@Fork(1)
+public class TerrainBenchmark {
+    private static final int SLICES = 200;
+
+    private GameWorld world;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        world = BenchmarkWorlds.playing(1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SLICES)
+    public GameWorld generateTerrain() {
+        for (int i = 0; i < SLICES; i++) {
+            world.generateTerrain();
+        }
+        return world;
+    }
+}
@@ -0,0 +1,32 @@
+package mario;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One gameplay tick (GameWorld.updatePlaying) with no buttons held, at increasing amounts
+// of generated world. Cost that grows with the param means something still scans the
+// whole world rather than what is near the camera.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    @Param({"1", "4", "16", "64"})
+    public int chunks;
+
+    private GameWorld world;
+    private final InputState input = new InputState();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        world = BenchmarkWorlds.playing(chunks);
+    }
+
+    @Benchmark
+    public GameWorld updatePlaying() {
+        world.updatePlaying(input);
+        return world;
+    }
+}
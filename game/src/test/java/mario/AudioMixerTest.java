@@ -0,0 +1,153 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class AudioMixerTest {
+    private static final int FRAMES = AudioMixer.CHUNK_FRAMES;
+
+    @Test
+    void overlappingPlaysOfOneSampleAddUpAndClip() {
+        AudioMixer mixer = startedMixer(4);
+        short[] sample = constant(1000, FRAMES * 2);
+        mixer.play(sample, 1f, 0f, false);
+        mixer.play(sample, 1f, 0f, false);
+
+        byte[] out = mix(mixer);
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(2000, left(out, i));
+            assertEquals(2000, right(out, i));
+        }
+        assertEquals(2, mixer.getActiveVoices());
+
+        // Past full scale the sum is clamped rather than wrapping round
+        short[] loud = constant(30000, FRAMES);
+        mixer.stopAll();
+        mixer.play(loud, 1f, 0f, false);
+        mixer.play(loud, 1f, 0f, false);
+        out = mix(mixer);
+        assertEquals(Short.MAX_VALUE, left(out, 0));
+        assertEquals(Short.MAX_VALUE, right(out, FRAMES - 1));
+    }
+
+    @Test
+    void panSplitsVolumeBetweenSides() {
+        short[] sample = constant(1000, FRAMES);
+        float[][] panAndGains = {{-1f, 1f, 0f}, {1f, 0f, 1f}, {0.5f, 0.5f, 1f}, {-3f, 1f, 0f}};
+        for (float[] expected : panAndGains) {
+            AudioMixer mixer = startedMixer(4);
+            mixer.play(sample, 1f, expected[0], false);
+            byte[] out = mix(mixer);
+            assertEquals(Math.round(1000 * expected[1]), left(out, 0), "left at pan " + expected[0]);
+            assertEquals(Math.round(1000 * expected[2]), right(out, 0), "right at pan " + expected[0]);
+        }
+    }
+
+    @Test
+    void oneShotFreesItsVoiceWhenPlayedOut() {
+        AudioMixer mixer = startedMixer(4);
+        mixer.play(constant(1000, FRAMES / 2), 1f, 0f, false);
+
+        byte[] out = mix(mixer);
+        assertEquals(1000, left(out, FRAMES / 2 - 1));
+        assertEquals(0, left(out, FRAMES / 2));
+        assertEquals(0, mixer.getActiveVoices());
+        assertEquals(0, left(mix(mixer), 0));
+    }
+
+    @Test
+    void loopWrapsSeamlesslyAndIsNotStartedTwice() {
+        AudioMixer mixer = startedMixer(4);
+        int length = 100; // Doesn't divide the chunk, so wraps land mid-chunk
+        short[] ramp = new short[length * 2];
+        for (int i = 0; i < length; i++) {
+            ramp[i * 2] = (short) i;
+            ramp[i * 2 + 1] = (short) -i;
+        }
+        mixer.play(ramp, 1f, 0f, true);
+        mixer.play(ramp, 1f, 0f, true);
+
+        for (int chunk = 0; chunk < 5; chunk++) {
+            byte[] out = mix(mixer);
+            for (int i = 0; i < FRAMES; i++) {
+                int frame = (chunk * FRAMES + i) % length;
+                assertEquals(frame, left(out, i));
+                assertEquals(-frame, right(out, i));
+            }
+        }
+        assertEquals(1, mixer.getActiveVoices());
+    }
+
+    @Test
+    void fullMixerStealsTheOldestOneShotBeforeAnyLoop() {
+        AudioMixer mixer = startedMixer(3);
+        short[] loop = constant(1000, FRAMES);
+        short[] first = constant(100, FRAMES * 4);
+        short[] second = constant(10, FRAMES * 4);
+        short[] third = constant(1, FRAMES * 4);
+        mixer.play(loop, 1f, 0f, true);
+        mixer.play(first, 1f, 0f, false);
+        mixer.play(second, 1f, 0f, false);
+        mixer.play(third, 1f, 0f, false);
+
+        assertEquals(1011, left(mix(mixer), 0));
+        assertEquals(3, mixer.getActiveVoices());
+
+        // With only loops left, the oldest loop goes
+        AudioMixer loops = startedMixer(2);
+        loops.play(constant(100, FRAMES), 1f, 0f, true);
+        loops.play(constant(10, FRAMES), 1f, 0f, true);
+        loops.play(constant(1, FRAMES), 1f, 0f, true);
+        assertEquals(11, left(mix(loops), 0));
+    }
+
+    @Test
+    void stopSilencesOneSampleAndStopAllSilencesEverything() {
+        AudioMixer mixer = startedMixer(4);
+        short[] hum = constant(100, FRAMES);
+        short[] beep = constant(10, FRAMES * 4);
+        mixer.play(hum, 1f, 0f, true);
+        mixer.play(hum, 1f, 0f, false);
+        mixer.play(beep, 1f, 0f, false);
+        assertEquals(210, left(mix(mixer), 0));
+
+        // Stopping a sample stops every voice playing it, looping or not
+        mixer.stop(hum);
+        assertEquals(10, left(mix(mixer), 0));
+        assertEquals(1, mixer.getActiveVoices());
+
+        mixer.play(hum, 1f, 0f, true);
+        mixer.stopAll();
+        assertEquals(0, left(mix(mixer), 0));
+        assertEquals(0, mixer.getActiveVoices());
+    }
+
+    private static AudioMixer startedMixer(int voices) {
+        AudioMixer mixer = new AudioMixer(voices);
+        mixer.startWithoutLine();
+        return mixer;
+    }
+
+    private static byte[] mix(AudioMixer mixer) {
+        byte[] out = new byte[FRAMES * 4];
+        mixer.mixChunk(out);
+        return out;
+    }
+
+    // Interleaved stereo with the same value on both sides
+    private static short[] constant(int value, int frames) {
+        short[] sample = new short[frames * 2];
+        Arrays.fill(sample, (short) value);
+        return sample;
+    }
+
+    private static int left(byte[] out, int frame) {
+        return (short) ((out[frame * 4] & 0xFF) | (out[frame * 4 + 1] << 8));
+    }
+
+    private static int right(byte[] out, int frame) {
+        return (short) ((out[frame * 4 + 2] & 0xFF) | (out[frame * 4 + 3] << 8));
+    }
+}
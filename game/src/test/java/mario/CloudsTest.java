@@ -0,0 +1,59 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class CloudsTest {
+    @Test
+    void cloudsOnScreenAreNeverCulled() {
+        // This seed's bot gets well past the point where the parallax window (1.5x the camera)
+        // and the camera itself have drifted apart by more than a screen
+        GameWorld world = new GameWorld(new SilentSoundSink(), 1);
+        world.reset();
+        InputState input = new InputState();
+        int farthestWithCloudsShown = 0;
+
+        for (int tick = 0; tick < 20_000; tick++) {
+            List<Cloud> clouds = world.getClouds();
+            List<Cloud> shown = onScreen(world);
+            if (!shown.isEmpty()) {
+                farthestWithCloudsShown = Math.max(farthestWithCloudsShown, world.getCameraX());
+            }
+
+            HeadlessRunner.scriptInput(world, input, tick);
+            world.step(input);
+            if (world.getClouds() != clouds) {
+                continue; // The game restarted with a fresh sky
+            }
+
+            Set<Cloud> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+            kept.addAll(world.getClouds());
+            for (Cloud cloud : shown) {
+                assertTrue(kept.contains(cloud), "cloud at x=" + cloud.getX() + " was removed while on screen"
+                        + " (camera at x=" + world.getCameraX() + ")");
+            }
+        }
+
+        assertTrue(farthestWithCloudsShown > 4000,
+                "no clouds on screen past camera x=" + farthestWithCloudsShown);
+    }
+
+    // The clouds drawGame would put on screen this frame
+    private static List<Cloud> onScreen(GameWorld world) {
+        int left = world.getCloudWindowLeft();
+        int right = left + GameWorld.SCREEN_WIDTH;
+        List<Cloud> shown = new ArrayList<>();
+        for (Cloud cloud : world.getClouds()) {
+            if (cloud.getX() + cloud.getWidth() >= left && cloud.getX() <= right) {
+                shown.add(cloud);
+            }
+        }
+        return shown;
+    }
+}
@@ -0,0 +1,81 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class EnemySeparationTest {
+    @Test
+    void sweepFindsEveryOverlappingPairExactlyOnce() {
+        Random random = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            // Crowded onto a few x positions so many boxes share a left edge; widths include zero
+            List<GameObject> boxes = new ArrayList<>();
+            int count = 1 + random.nextInt(120);
+            for (int i = 0; i < count; i++) {
+                boxes.add(new GameObject(random.nextInt(40) * 10, random.nextInt(100),
+                        random.nextInt(60), 1 + random.nextInt(40)));
+            }
+            XOrder.sort(boxes);
+            Map<GameObject, Integer> ids = new IdentityHashMap<>();
+            for (GameObject box : boxes) {
+                ids.put(box, ids.size());
+            }
+
+            List<Long> swept = new ArrayList<>();
+            XOrder.forEachOverlap(boxes, (left, right) -> {
+                assertTrue(left.getX() <= right.getX(), "pair reported right to left");
+                swept.add(pairKey(ids.get(left), ids.get(right)));
+            });
+
+            Set<Long> expected = new HashSet<>();
+            for (int i = 0; i < boxes.size(); i++) {
+                for (int j = i + 1; j < boxes.size(); j++) {
+                    if (Aabb.overlaps(boxes.get(i), boxes.get(j))) {
+                        expected.add(pairKey(i, j));
+                    }
+                }
+            }
+
+            assertEquals(expected.size(), swept.size(), "a pair was reported twice or missed");
+            assertEquals(expected, new HashSet<>(swept));
+        }
+    }
+
+    @Test
+    void overlappingPairTurnsAwayAndKeepsWalkingApart() {
+        Enemy left = new Enemy(100, 0, 1);
+        Enemy right = new Enemy(110, 0, -1);
+        List<Enemy> enemies = new ArrayList<>(List.of(right, left));
+
+        GameWorld.separateEnemies(enemies);
+        assertEquals(-1, left.getDirection());
+        assertEquals(1, right.getDirection());
+
+        // Still overlapping a tick later: plain reversal would turn them back into each other
+        left.update();
+        right.update();
+        assertTrue(Aabb.overlaps(left, right));
+        GameWorld.separateEnemies(enemies);
+        assertEquals(-1, left.getDirection());
+        assertEquals(1, right.getDirection());
+
+        // Stacked on the same x, they still end up facing opposite ways
+        Enemy a = new Enemy(200, 0, 1);
+        Enemy b = new Enemy(200, 0, 1);
+        GameWorld.separateEnemies(new ArrayList<>(List.of(a, b)));
+        assertEquals(-a.getDirection(), b.getDirection());
+    }
+
+    private static long pairKey(int a, int b) {
+        return (long) Math.min(a, b) << 32 | Math.max(a, b);
+    }
+}
@@ -0,0 +1,93 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class GapIndexTest {
+    private static final int TILE_SIZE = GameWorld.TILE_SIZE;
+
+    @Test
+    void indexMatchesTheGroundAsTerrainIsGenerated() {
+        GameWorld world = new GameWorld(new SilentSoundSink(), 7);
+        world.reset();
+        for (int slice = 0; slice < 300; slice++) {
+            world.generateTerrain();
+        }
+
+        assertIndexMatchesGround(world, 0);
+        assertTrue(world.getGaps().size() > 0, "expected some pits in 300 slices");
+    }
+
+    @Test
+    void indexAndGroundAreEvictedTogether() {
+        GameWorld world = new GameWorld(new SilentSoundSink(), 11);
+        world.reset();
+        InputState input = new InputState();
+        boolean dropped = false;
+
+        for (int tick = 0; tick < 20_000; tick++) {
+            HeadlessRunner.scriptInput(world, input, tick);
+            world.step(input);
+            ChunkManager chunks = world.getChunkManager();
+            dropped |= chunks.getResidentChunkCount() > 0 && chunks.getChunk(0) == null;
+            if (tick % 100 == 0) {
+                // Everything from the eviction line rightwards is still resident
+                assertIndexMatchesGround(world, Math.max(0, (world.getCameraX() - 300) / TILE_SIZE));
+            }
+        }
+        assertTrue(dropped, "the run should have dropped chunks");
+    }
+
+    @Test
+    void evictedSlotsAreReusedInOrder() {
+        GapIndex gaps = new GapIndex();
+        for (int i = 0; i < 1000; i++) {
+            gaps.add(i * 10, i * 10 + 3);
+        }
+        gaps.evictBefore(5000);
+        assertEquals(500, gaps.size());
+
+        for (int i = 1000; i < 1200; i++) {
+            gaps.add(i * 10, i * 10 + 3);
+        }
+        assertEquals(700, gaps.size());
+        int first = gaps.firstEndingAfter(Integer.MIN_VALUE);
+        for (int index = first; index < gaps.getEndIndex(); index++) {
+            assertEquals(5000 + (index - first) * 10, gaps.getStart(index));
+        }
+        assertEquals(gaps.getEndIndex(), gaps.firstEndingAfter(12_000));
+        assertThrows(IllegalArgumentException.class, () -> gaps.add(11_990, 12_000));
+    }
+
+    // Every pit the ground has from the given column on is in the index, in order, and every
+    // indexed pit is still backed by resident ground (a stale one would end in evicted columns)
+    private static void assertIndexMatchesGround(GameWorld world, int fromColumn) {
+        GroundColumns ground = world.getGround();
+        GapIndex gaps = world.getGaps();
+        int endColumn = world.getWorldRightEdge() / TILE_SIZE;
+
+        int column = ground.nextSolid(fromColumn, endColumn);
+        int index = gaps.firstEndingAfter(column);
+        for (int start = ground.nextGap(column, endColumn); start < endColumn; ) {
+            int end = ground.nextSolid(start, endColumn);
+            assertTrue(index < gaps.getEndIndex(), "pit at column " + start + " is not indexed");
+            assertEquals(start, gaps.getStart(index), "pit start");
+            if (end == endColumn) {
+                break; // Runs into the next slice's columns, which aren't generated yet
+            }
+            assertEquals(end, gaps.getEnd(index), "pit end");
+            index++;
+            start = ground.nextGap(end, endColumn);
+        }
+
+        for (index = gaps.firstEndingAfter(Integer.MIN_VALUE); index < gaps.getEndIndex(); index++) {
+            if (gaps.getEnd(index) < endColumn) {
+                assertTrue(ground.isSolid(gaps.getEnd(index)), "indexed pit ending at column "
+                        + gaps.getEnd(index) + " is no longer backed by ground");
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class GroundColumnsTest {
+    // Columns are written left to right in slices and evicted from the left, as the world does.
+    // Evicted words read as empty ground, so the reference only counts columns from the first
+    // kept word onwards.
+    @Test
+    void lookupsMatchABitSetAcrossAppendsAndEvictions() {
+        Random random = new Random(3);
+        GroundColumns ground = new GroundColumns();
+        BitSet reference = new BitSet();
+        int rightEdge = 0;
+        int keptFrom = 0;
+
+        for (int slice = 0; slice < 400; slice++) {
+            int end = rightEdge + 10 + random.nextInt(80);
+            for (int column = rightEdge; column < end; column++) {
+                if (random.nextInt(6) != 0) {
+                    ground.setSolid(column);
+                    reference.set(column);
+                }
+            }
+            rightEdge = end;
+
+            if (slice % 5 == 4) {
+                int evictColumn = rightEdge - 100 - random.nextInt(200);
+                ground.evictBefore(evictColumn);
+                keptFrom = Math.max(keptFrom, Math.floorDiv(evictColumn, 64) * 64);
+            }
+
+            for (int probe = 0; probe < 50; probe++) {
+                int from = keptFrom - 130 + random.nextInt(rightEdge - keptFrom + 260);
+                int limit = from + random.nextInt(300);
+                assertEquals(expectedSolid(reference, keptFrom, from), ground.isSolid(from), "isSolid(" + from + ")");
+                assertEquals(expectedNext(reference, keptFrom, from, limit, true), ground.nextSolid(from, limit),
+                        "nextSolid(" + from + ", " + limit + ")");
+                assertEquals(expectedNext(reference, keptFrom, from, limit, false), ground.nextGap(from, limit),
+                        "nextGap(" + from + ", " + limit + ")");
+            }
+        }
+    }
+
+    @Test
+    void evictionDropsWholeWordsOnly() {
+        GroundColumns ground = new GroundColumns();
+        for (int column = 0; column < 256; column++) {
+            ground.setSolid(column);
+        }
+
+        ground.evictBefore(100); // Column 100 is in the second word, so only the first goes
+        assertEquals(192, ground.getStoredColumnCount());
+        assertFalse(ground.isSolid(63));
+        assertTrue(ground.isSolid(64));
+        assertEquals(64, ground.nextSolid(0, 256));
+        assertEquals(0, ground.nextGap(0, 256));
+        assertEquals(256, ground.nextGap(64, 300));
+    }
+
+    private static boolean expectedSolid(BitSet reference, int keptFrom, int column) {
+        return column >= keptFrom && reference.get(column);
+    }
+
+    private static int expectedNext(BitSet reference, int keptFrom, int from, int limit, boolean solid) {
+        for (int column = from; column < limit; column++) {
+            if (expectedSolid(reference, keptFrom, column) == solid) {
+                return column;
+            }
+        }
+        return limit;
+    }
+}
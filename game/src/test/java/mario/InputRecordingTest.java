@@ -0,0 +1,111 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InputRecordingTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void savedRecordingLoadsBackTickForTick() throws IOException {
+        // Held buttons give long runs, taps give runs of one
+        Random random = new Random(5);
+        int[] ticks = new int[20_000];
+        int buttons = 0;
+        for (int tick = 0; tick < ticks.length; tick++) {
+            if (random.nextInt(20) == 0) {
+                buttons = random.nextInt(1 << 7);
+            }
+            ticks[tick] = buttons;
+        }
+
+        InputRecording recording = new InputRecording(-42L);
+        for (int tick : ticks) {
+            recording.record(tick);
+        }
+        Path file = dir.resolve("session.mrpl");
+        recording.save(file);
+
+        InputRecording loaded = InputRecording.load(file);
+        assertEquals(-42L, loaded.getSeed());
+        assertEquals(ticks.length, loaded.getTickCount());
+        IntStream.Builder replayed = IntStream.builder();
+        loaded.forEachTick(replayed::add);
+        assertArrayEquals(ticks, replayed.build().toArray());
+    }
+
+    @Test
+    void emptyRecordingRoundTrips() throws IOException {
+        Path file = dir.resolve("empty.mrpl");
+        new InputRecording(7L).save(file);
+
+        InputRecording loaded = InputRecording.load(file);
+        assertEquals(7L, loaded.getSeed());
+        assertEquals(0, loaded.getTickCount());
+    }
+
+    @Test
+    void rejectsFilesThatAreNotReplays() throws IOException {
+        assertRejected(header(0x12345678, 1, 0));
+        assertRejected(header(0x4D52504C, 99, 0));
+    }
+
+    @Test
+    void rejectsCorruptRunData() throws IOException {
+        assertRejected(header(0x4D52504C, 1, -1));
+        assertRejected(withRun(header(0x4D52504C, 1, 1), 4, 0));
+        assertRejected(withRun(header(0x4D52504C, 1, 1), 4, -5));
+        assertRejected(header(0x4D52504C, 1, 3)); // Says three runs, holds none
+    }
+
+    @Test
+    void hugeRunLengthLoadsWithoutExpandingIt() throws IOException {
+        Path file = write(withRun(header(0x4D52504C, 1, 1), 4, Integer.MAX_VALUE));
+        InputRecording loaded = InputRecording.load(file);
+        assertEquals(Integer.MAX_VALUE, loaded.getTickCount());
+    }
+
+    private static byte[] header(int magic, int version, int runs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(1L);
+            out.writeInt(runs);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] withRun(byte[] prefix, int buttons, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(prefix);
+            out.writeShort(buttons);
+            out.writeInt(length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void assertRejected(byte[] contents) throws IOException {
+        Path file = write(contents);
+        assertThrows(IOException.class, () -> InputRecording.load(file));
+    }
+
+    private Path write(byte[] contents) throws IOException {
+        Path file = Files.createTempFile(dir, "replay", ".mrpl");
+        Files.write(file, contents);
+        return file;
+    }
+}
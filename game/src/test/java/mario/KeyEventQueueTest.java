@@ -0,0 +1,100 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class KeyEventQueueTest {
+    @Test
+    void drainsEventsInOrderAcrossWrapAround() {
+        KeyEventQueue queue = new KeyEventQueue(8);
+        List<Long> seen = new ArrayList<>();
+        long next = 0;
+
+        // Batches of uneven size walk the indices round the ring many times
+        for (int batch = 0; batch < 200; batch++) {
+            int size = 1 + batch % 8;
+            for (int i = 0; i < size; i++) {
+                long event = next++;
+                assertTrue(queue.offer((int) event, event % 3 == 0, event * 10));
+            }
+            assertEquals(size, queue.drain((code, pressed, time) -> {
+                assertEquals(code % 3 == 0, pressed);
+                assertEquals(code * 10L, time);
+                seen.add((long) code);
+            }));
+        }
+
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(i, (long) seen.get(i));
+        }
+        assertEquals(next, seen.size());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    void fullRingDropsAndCountsNewEvents() {
+        KeyEventQueue queue = new KeyEventQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, true, i));
+        }
+        assertFalse(queue.offer(99, true, 99));
+        assertFalse(queue.offer(100, true, 100));
+        assertEquals(2, queue.getDropped());
+
+        // The oldest events survive; once drained there is room again
+        List<Integer> codes = new ArrayList<>();
+        assertEquals(4, queue.drain((code, pressed, time) -> codes.add(code)));
+        assertEquals(List.of(0, 1, 2, 3), codes);
+        assertTrue(queue.offer(5, false, 5));
+        assertEquals(1, queue.drain((code, pressed, time) -> {}));
+    }
+
+    @Test
+    void capacityMustBeAPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new KeyEventQueue(100));
+    }
+
+    @Test
+    void handsEventsFromProducerThreadToConsumerIntact() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            KeyEventQueue queue = new KeyEventQueue(1024);
+            int count = 2_000_000;
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < count; ) {
+                    if (queue.offer(i, (i & 1) == 0, i * 3L)) {
+                        i++;
+                    } else {
+                        Thread.yield(); // Full; the producer retries, so these count as drops
+                    }
+                }
+            });
+            producer.start();
+
+            long[] received = {0};
+            long[] corrupt = {0};
+            while (received[0] < count) {
+                int drained = queue.drain((code, pressed, time) -> {
+                    if (code != received[0] || pressed != ((code & 1) == 0) || time != code * 3L) {
+                        corrupt[0]++;
+                    }
+                    received[0]++;
+                });
+                if (drained == 0) {
+                    Thread.yield();
+                }
+            }
+            producer.join();
+
+            assertEquals(0, corrupt[0], "events arrived out of order or torn");
+            assertEquals(count, received[0]);
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.time.Duration;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MusicStreamTest {
+    // Not a whole number of buffers, so every wrap lands part way through one
+    private static final int TRACK_FRAMES = 3001;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void loopingTrackRunsStraightIntoItsStartEveryTime() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            MusicStream stream = new MusicStream("ramp", rampWav(), 1f, true);
+            stream.start();
+            try {
+                // Far more frames than the ring holds, so buffers must keep coming back to it
+                int loops = 20;
+                for (long frame = 0; frame < (long) loops * TRACK_FRAMES; frame++) {
+                    int expected = (int) (frame % TRACK_FRAMES) + 1;
+                    int[] sample = nextFrame(stream);
+                    assertEquals(expected, sample[0], "left at frame " + frame);
+                    assertEquals(-expected, sample[1], "right at frame " + frame);
+                }
+            } finally {
+                stream.close();
+            }
+        });
+    }
+
+    @Test
+    void finishedTrackPlaysOnceAndReturnsEveryBuffer() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            MusicStream stream = new MusicStream("ramp", rampWav(), 1f, false);
+            stream.start();
+
+            int frames = 0;
+            int[] left = new int[1];
+            int[] right = new int[1];
+            while (true) {
+                left[0] = 0;
+                right[0] = 0;
+                if (!stream.mixInto(left, right, 1)) {
+                    break;
+                }
+                if (left[0] == 0) {
+                    Thread.yield(); // Reader behind
+                    continue;
+                }
+                frames++;
+                assertEquals(frames, left[0]);
+                assertEquals(-frames, right[0]);
+            }
+
+            assertEquals(TRACK_FRAMES, frames);
+            assertEquals(MusicStream.BUFFERS, stream.getFreeBuffers());
+        });
+    }
+
+    // One frame of the stream, waiting out any moment the reader is behind. No frame of the
+    // ramp is silent, so silence can only mean nothing was ready.
+    private static int[] nextFrame(MusicStream stream) {
+        int[] left = new int[1];
+        int[] right = new int[1];
+        while (true) {
+            stream.mixInto(left, right, 1);
+            if (left[0] != 0) {
+                return new int[] {left[0], right[0]};
+            }
+            Thread.yield();
+        }
+    }
+
+    // A WAV already in the mixer's format, counting 1, 2, 3... on the left and down on the right
+    private URL rampWav() throws IOException {
+        byte[] pcm = new byte[TRACK_FRAMES * 4];
+        for (int i = 0; i < TRACK_FRAMES; i++) {
+            int value = i + 1;
+            pcm[i * 4] = (byte) value;
+            pcm[i * 4 + 1] = (byte) (value >> 8);
+            pcm[i * 4 + 2] = (byte) -value;
+            pcm[i * 4 + 3] = (byte) (-value >> 8);
+        }
+        Path file = dir.resolve("ramp.wav");
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), AudioMixer.FORMAT, TRACK_FRAMES);
+        AudioSystem.write(in, AudioFileFormat.Type.WAVE, file.toFile());
+        return file.toUri().toURL();
+    }
+}
@@ -0,0 +1,88 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+
+class PlayerSpriteTest {
+    private static final int[] VELOCITIES = {-5, 0, 5};
+
+    // CRC32 of each player state drawn with the primitive fills that SpriteCache replaced,
+    // ordered by size, then velocity, then on the ground or not, then animation frame
+    private static final long[] ORIGINAL_DRAWING = {
+            0xa17469cbL, 0xa17469cbL, 0xa17469cbL, 0xa17469cbL,
+            0x54e74810L, 0x676ed0b0L, 0x37510df1L, 0xb8daf4f5L,
+            0x42183f0dL, 0x42183f0dL, 0x42183f0dL, 0x42183f0dL,
+            0x42183f0dL, 0x42183f0dL, 0x42183f0dL, 0x42183f0dL,
+            0x42183f0dL, 0x42183f0dL, 0x42183f0dL, 0x42183f0dL,
+            0xb78b1ed6L, 0x84028676L, 0xd43d5b37L, 0x5bb6a233L,
+            0xfb4d152dL, 0xfb4d152dL, 0xfb4d152dL, 0xfb4d152dL,
+            0x0ede34f6L, 0x3d57ac56L, 0x6d687117L, 0xe2e38813L,
+            0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL,
+            0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL,
+            0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL, 0x740b6fdbL,
+            0x81984e00L, 0xb211d6a0L, 0xe22e0be1L, 0x6da5f2e5L
+    };
+
+    @Test
+    void cachedSpritesMatchTheOriginalDrawingInEveryState() {
+        GameWorld world = new GameWorld(new SilentSoundSink(), 1);
+        world.reset();
+        MarioGame game = new MarioGame(world);
+
+        int state = 0;
+        for (int big = 0; big < 2; big++) {
+            for (int velX : VELOCITIES) {
+                for (int onGround = 0; onGround < 2; onGround++) {
+                    for (int frame = 0; frame < 4; frame++) {
+                        Player player = playerAt(big == 1, velX, onGround == 1, frame);
+                        assertEquals(ORIGINAL_DRAWING[state], crcOf(game, player),
+                                String.format("big=%d velX=%d onGround=%d frame=%d", big, velX, onGround, frame));
+                        state++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static Player playerAt(boolean big, int velX, boolean onGround, int frame) {
+        Player player = new Player(40, 20);
+        if (big) {
+            player.powerUp();
+        }
+
+        // Run the animation up to the wanted frame, then settle on the wanted velocity
+        player.setVelX(1);
+        while (player.getAnimFrame() != frame) {
+            player.updateAnimation();
+        }
+        player.setVelX(velX);
+        player.setOnGround(onGround);
+        return player;
+    }
+
+    private static long crcOf(MarioGame game, Player player) {
+        RenderBuffer buffer = new RenderBuffer();
+        game.drawPlayer(buffer, player);
+
+        BufferedImage image = new BufferedImage(120, 120, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        buffer.replay(g);
+        g.dispose();
+
+        CRC32 crc = new CRC32();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                crc.update(rgb >>> 24);
+                crc.update(rgb >>> 16);
+                crc.update(rgb >>> 8);
+                crc.update(rgb);
+            }
+        }
+        return crc.getValue();
+    }
+}
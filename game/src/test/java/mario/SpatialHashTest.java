@@ -0,0 +1,82 @@
+package mario;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SpatialHashTest {
+    @Test
+    void queriesMatchBruteForceThroughRandomInsertsAndRemoves() {
+        Random random = new Random(1);
+        SpatialHash<Platform> hash = new SpatialHash<>(64);
+        List<Platform> all = new ArrayList<>();
+        List<Platform> found = new ArrayList<>();
+
+        for (int op = 0; op < 50_000; op++) {
+            int kind = random.nextInt(3);
+            if (kind == 0 || all.isEmpty()) {
+                Platform platform = new Platform(random.nextInt(20_000) - 5_000, random.nextInt(800) - 100,
+                        1 + random.nextInt(150), 1 + random.nextInt(40));
+                all.add(platform);
+                hash.insert(platform);
+            } else if (kind == 1) {
+                hash.remove(all.remove(random.nextInt(all.size())));
+            } else {
+                int x = random.nextInt(20_000) - 5_000;
+                int y = random.nextInt(800) - 100;
+                int width = 1 + random.nextInt(200);
+                int height = 1 + random.nextInt(200);
+
+                found.clear();
+                hash.query(x, y, width, height, found);
+                assertEquals(found.size(), new HashSet<>(found).size(), "query returned duplicates");
+
+                boolean anyExpected = false;
+                for (Platform platform : all) {
+                    if (Aabb.overlaps(x, y, width, height, platform.getX(), platform.getY(),
+                            platform.getWidth(), platform.getHeight())) {
+                        anyExpected = true;
+                        assertTrue(found.contains(platform), "query missed a platform at op " + op);
+                    }
+                }
+                assertEquals(anyExpected, hash.intersectsAny(x, y, width, height));
+            }
+        }
+    }
+
+    @Test
+    void removingEveryEntryLeavesNoCells() {
+        // Enough cells to force several resizes, removed in an order unrelated to insertion so
+        // deletions land in the middle of probe chains
+        SpatialHash<Platform> hash = new SpatialHash<>(32);
+        List<Platform> all = new ArrayList<>();
+        for (int i = 0; i < 4_000; i++) {
+            Platform platform = new Platform((i * 7919) % 100_000, (i * 31) % 640, 32, 32);
+            all.add(platform);
+            hash.insert(platform);
+        }
+
+        java.util.Collections.shuffle(all, new Random(2));
+        for (int i = 0; i < all.size(); i++) {
+            hash.remove(all.get(i));
+            // Everything not yet removed must still be reachable through its cell
+            if (i % 97 == 0) {
+                for (int j = i + 1; j < all.size(); j++) {
+                    Platform platform = all.get(j);
+                    assertNotNull(hash.firstOverlapping(platform.getX(), platform.getY(), 1, 1));
+                }
+            }
+        }
+        assertEquals(0, hash.getCellCount());
+        assertFalse(hash.intersectsAny(0, 0, 100_000, 640));
+        assertNull(hash.firstOverlapping(0, 0, 100_000, 640));
+    }
+}